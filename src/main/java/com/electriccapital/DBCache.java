@@ -0,0 +1,103 @@
+package com.electriccapital;
+
+/**
+ * In-memory copies of the small lookup tables that get checked on every single message - the channel watchlist
+ * and the set of known users. Both are loaded once at startup and then kept in sync by whoever writes to the
+ * tables, so the hot path doesn't have to run a COUNT query per message. Until load() has run, DBUtils falls
+ * back to querying the database directly. The user set can lag behind the members table when another process
+ * writes to it (the aggregators in scale-out mode), so DBUtils only trusts it for users it does contain.
+ */
+
+import org.slf4j.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class DBCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DBCache.class);
+
+    private static final Set<Long> CHANNELS = ConcurrentHashMap.newKeySet();
+    private static final Set<Long> USERS = ConcurrentHashMap.newKeySet();
+    private static volatile boolean loaded = false;
+
+    /**
+     * Loads the watchlist and known users from the database.
+     * @return whether the load succeeded
+     */
+    public static boolean load() {
+        Connection conn = DBUtils.getConnection();
+        if (conn == null)
+            return false;
+        Statement statement = null;
+        ResultSet rs = null;
+        try {
+            statement = conn.createStatement();
+            rs = statement.executeQuery("SELECT channelID FROM channels");
+            while (rs.next())
+                CHANNELS.add(rs.getLong(1));
+            DBUtils.close(rs);
+            rs = statement.executeQuery("SELECT DISTINCT userID FROM members");
+            while (rs.next())
+                USERS.add(rs.getLong(1));
+            loaded = true;
+            LOGGER.info("Cached {} tracked channels and {} known users", CHANNELS.size(), USERS.size());
+            return true;
+        } catch (SQLException e) {
+            DBUtils.logError(e);
+            return false;
+        } finally {
+            DBUtils.close(rs, statement, conn);
+        }
+    }
+
+    /**
+     * Whether load() has finished successfully.
+     * @return
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Checks if a channel is on the watchlist.
+     * @param channelId
+     * @return
+     */
+    public static boolean hasChannel(long channelId) {
+        return CHANNELS.contains(channelId);
+    }
+
+    /**
+     * Records a channel that was just added to the watchlist.
+     * @param channelId
+     */
+    public static void addChannel(long channelId) {
+        CHANNELS.add(channelId);
+    }
+
+    /**
+     * Records a channel that was just removed from the watchlist.
+     * @param channelId
+     */
+    public static void removeChannel(long channelId) {
+        CHANNELS.remove(channelId);
+    }
+
+    /**
+     * Checks if a user has a row in the members table.
+     * @param userId
+     * @return
+     */
+    public static boolean hasUser(long userId) {
+        return USERS.contains(userId);
+    }
+
+    /**
+     * Records a user that was just added to the members table.
+     * @param userId
+     */
+    public static void addUser(long userId) {
+        USERS.add(userId);
+    }
+}
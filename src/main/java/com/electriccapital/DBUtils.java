@@ -14,6 +14,25 @@ import java.sql.Date;
 
 public class DBUtils{
     private static final Logger LOGGER = LoggerFactory.getLogger(DBUtils.class);
+    public static final String DEFAULT_DB_FILE = "src/main/java/com/electriccapital/activity.db";
+
+    private static volatile String dbFile = DEFAULT_DB_FILE;
+
+    /**
+     * Points every later connection at a different SQLite file, e.g. a scratch database for offline tools.
+     * @param path
+     */
+    public static void setDatabaseFile(String path) {
+        dbFile = path;
+    }
+
+    /**
+     * Gets the SQLite file connections are currently made to.
+     * @return
+     */
+    public static String getDatabaseFile() {
+        return dbFile;
+    }
 
     /**
      * Utility method to get a results set from a String query.
@@ -110,7 +129,7 @@ public class DBUtils{
         try {
             Class.forName("org.sqlite.JDBC");
             // Currently getting connection to a local SQLite database - when scaling, can change this connection.
-            conn = DriverManager.getConnection("jdbc:sqlite:src/main/java/com/electriccapital/activity.db");
+            conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
         } catch (Exception e) {
             conn = null;
             LOGGER.error("Couldn't connect to database", e);
@@ -233,6 +252,8 @@ public class DBUtils{
      * @return
      */
     public static boolean containsChannel(TextChannel channel){
+        if (DBCache.isLoaded())
+            return DBCache.hasChannel(channel.getIdLong());
         String query = "SELECT count(1) from channels WHERE channelID = " + channel.getIdLong();
         return getIntResult(query, 1)!=0;
     }
@@ -243,19 +264,24 @@ public class DBUtils{
      * @return
      */
     public static boolean containsUser(User user){
-        String query = "SELECT count(1) from members WHERE userID = " + user.getIdLong();
-        return getIntResult(query, 1)!=0;
+        return containsUser(user.getIdLong());
     }
 
 
     /**
-     * Checks if the database contains a given user given their ID
+     * Checks if the database contains a given user given their ID. Only a cache hit is trusted - in scale-out mode
+     * the aggregators add members from another process, so a miss still has to be checked against the database.
      * @param id
      * @return
      */
     public static boolean containsUser(long id){
+        if (DBCache.isLoaded() && DBCache.hasUser(id))
+            return true;
         String query = "SELECT count(1) from members WHERE userID = " + id;
-        return getIntResult(query, 1)!=0;
+        boolean found = getIntResult(query, 1)!=0;
+        if (found)
+            DBCache.addUser(id);
+        return found;
     }
 
     /**
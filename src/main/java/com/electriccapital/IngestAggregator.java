@@ -0,0 +1,292 @@
+package com.electriccapital;
+
+/**
+ * Consumes the ingestion logs written by bot instances in scale-out mode and applies them to the shared store.
+ * Several aggregators can run side by side: aggregator k of n owns every partition p with p % n == k, across all
+ * instance directories, so no two aggregators ever apply the same partition.
+ *
+ * Exactly-once comes from keeping the read position of every segment in the store itself (ingest_offsets) and
+ * moving it forward in the same transaction that applies the records. If an aggregator dies mid-batch the whole
+ * transaction rolls back, offset included, and the batch is simply read again. Transactions start with
+ * BEGIN IMMEDIATE, so the offset read at the start of a batch can't change underneath it.
+ *
+ * Usage: IngestAggregator --log-dir dir --db store.db [--aggregator k] [--aggregators n] [--batch n]
+ *                         [--poll-ms n] [--once true]
+ */
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class IngestAggregator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestAggregator.class);
+
+    private static final List<String> OPTIONS = Arrays.asList("log-dir", "db", "aggregator", "aggregators", "batch",
+            "poll-ms", "once");
+
+    private final File logRoot;
+    private final int index;
+    private final int count;
+    private final int batchSize;
+    // segments with a corrupt record in the middle; they're left alone so nothing after the bad record is lost
+    private final Set<String> corruptSources = new HashSet<>();
+
+    /**
+     * @param logRoot directory holding one subdirectory per bot instance
+     * @param index which aggregator this is, from 0
+     * @param count total number of aggregators
+     * @param batchSize most records applied per transaction
+     */
+    public IngestAggregator(File logRoot, int index, int count, int batchSize) {
+        if (count < 1 || index < 0 || index >= count)
+            throw new IllegalArgumentException("Aggregator index must be between 0 and " + (count - 1));
+        this.logRoot = logRoot;
+        this.index = index;
+        this.count = count;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Runs an aggregator until killed, or until the logs are drained when --once is given. A failed pass is logged
+     * and retried after the poll interval.
+     * @param args
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        BasicConfigurator.configure();
+        org.apache.log4j.Logger.getRootLogger().setLevel(Level.INFO);
+        Map<String, String> opts = parseArgs(args);
+        if (opts == null || !opts.containsKey("log-dir") || !opts.containsKey("db")) {
+            System.err.println("Usage: IngestAggregator --log-dir dir --db store.db [--aggregator k] " +
+                    "[--aggregators n] [--batch n] [--poll-ms n] [--once true]");
+            System.exit(1);
+        }
+        DBUtils.setDatabaseFile(opts.get("db"));
+        int index = Integer.parseInt(opts.getOrDefault("aggregator", "0"));
+        IngestAggregator aggregator = new IngestAggregator(new File(opts.get("log-dir")), index,
+                Integer.parseInt(opts.getOrDefault("aggregators", "1")),
+                Integer.parseInt(opts.getOrDefault("batch", "500")));
+        long pollMillis = Long.parseLong(opts.getOrDefault("poll-ms", "200"));
+        boolean once = Boolean.parseBoolean(opts.getOrDefault("once", "false"));
+
+        prepareStore();
+        Metrics.startReporter(1, TimeUnit.MINUTES);
+        // one maintenance scheduler per store is plenty
+        if (index == 0)
+            MaintenanceScheduler.start();
+
+        Connection conn = null;
+        while (true) {
+            try {
+                if (conn == null)
+                    conn = connect();
+                long applied = aggregator.drain(conn);
+                if (applied > 0)
+                    LOGGER.info("Applied {} records", applied);
+                else if (once)
+                    break;
+                else
+                    Thread.sleep(pollMillis);
+            } catch (SQLException | IOException | RuntimeException e) {
+                // a locked store or a segment deleted underneath us shouldn't take the aggregator down; the failed
+                // batch was rolled back, so it's simply read again on a fresh connection
+                LOGGER.error("Draining the ingestion logs failed, retrying in " + pollMillis + " ms", e);
+                DBUtils.close(conn);
+                conn = null;
+                Thread.sleep(pollMillis);
+            }
+        }
+        DBUtils.close(conn);
+    }
+
+    /**
+     * Creates the schema and the offsets table if needed, and puts the store in WAL mode so the bot instances'
+     * reads don't block on the aggregators' writes.
+     */
+    static void prepareStore() {
+        Main.createDatabase();
+        DBUtils.executeLocalOnly("PRAGMA journal_mode = WAL",
+                "CREATE TABLE IF NOT EXISTS ingest_offsets (source VARCHAR(200) PRIMARY KEY, position BIGINT)");
+    }
+
+    /**
+     * Makes one pass over every segment this aggregator owns and applies whatever is new.
+     * @param conn
+     * @return number of records applied
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long drain(Connection conn) throws SQLException, IOException {
+        long applied = 0;
+        File[] instances = logRoot.listFiles(File::isDirectory);
+        if (instances == null)
+            return 0;
+        for (File instance : instances) {
+            for (Map.Entry<Integer, List<File>> entry : IngestLog.segmentsByPartition(instance).entrySet()) {
+                if (entry.getKey() % count != index)
+                    continue;
+                List<File> segments = entry.getValue();
+                for (int i = 0; i < segments.size(); i++) {
+                    String source = instance.getName() + "/" + segments.get(i).getName();
+                    // later segments of the partition wait too, so its messages still go in in order
+                    if (corruptSources.contains(source))
+                        break;
+                    boolean sealed = i < segments.size() - 1;
+                    applied += drainSegment(conn, source, segments.get(i), sealed);
+                    if (corruptSources.contains(source))
+                        break;
+                }
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Applies a segment batch by batch, from its committed offset to its end. A sealed segment that has been fully
+     * applied is deleted. A torn record at the very end of a sealed segment is skipped, since its writer crashed and
+     * will never finish it; a bad record anywhere else stops the segment where it is.
+     * @param conn
+     * @param source key of the segment in ingest_offsets
+     * @param segment
+     * @param sealed whether the writer has moved on to a newer segment
+     * @return number of records applied
+     * @throws SQLException
+     * @throws IOException
+     */
+    private long drainSegment(Connection conn, String source, File segment, boolean sealed)
+            throws SQLException, IOException {
+        // cheap check outside a transaction, so idle polls don't keep taking the write lock
+        if (!sealed && readOffset(conn, source) >= segment.length())
+            return 0;
+        long applied = 0;
+        while (true) {
+            conn.setAutoCommit(false);
+            try {
+                long offset = readOffset(conn, source);
+                IngestLog.Batch batch = IngestLog.read(segment, offset, batchSize);
+                if (batch.records.isEmpty() && batch.corrupt) {
+                    LOGGER.error("Corrupt record in {} at offset {}, not applying the rest of its partition",
+                            source, offset);
+                    corruptSources.add(source);
+                    conn.rollback();
+                    break;
+                }
+                if (batch.records.isEmpty() && batch.torn && sealed) {
+                    // nobody will ever finish this record - the writer crashed halfway through it
+                    batch.end = segment.length();
+                    LOGGER.warn("Skipping torn tail of {} at offset {}", source, offset);
+                }
+                if (batch.end == offset) {
+                    conn.rollback();
+                    break;
+                }
+                long start = System.nanoTime();
+                apply(conn, batch.records);
+                writeOffset(conn, source, batch.end);
+                conn.commit();
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < batch.records.size(); i++)
+                    Metrics.recordIngest(nanos / batch.records.size());
+                applied += batch.records.size();
+            } catch (SQLException | IOException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        if (sealed && readOffset(conn, source) >= segment.length()) {
+            // file first: a leftover offset row is harmless, a leftover file without its row would be applied again
+            if (!segment.delete())
+                throw new IOException("Couldn't delete applied segment " + segment);
+            deleteOffset(conn, source);
+        }
+        return applied;
+    }
+
+    /**
+     * Applies records with the same statements MessageEvent uses when it writes to the database directly.
+     * @param conn
+     * @param records
+     * @throws SQLException
+     */
+    private static void apply(Connection conn, List<IngestRecord> records) throws SQLException {
+        try (PreparedStatement member = conn.prepareStatement("INSERT INTO members (serverName, serverID, userName, " +
+                "userNickname, userID, messagesSent) SELECT ?, ?, ?, ?, ?, 0 " +
+                "WHERE NOT EXISTS (SELECT 1 FROM members WHERE userID = ?)");
+             PreparedStatement message = conn.prepareStatement("INSERT INTO messages (serverName, serverID, " +
+                     "channelName, channelID, userName, userNickname, userID, content, messageID, timestamp) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement sent = conn.prepareStatement("UPDATE members SET messagesSent = messagesSent + 1 " +
+                     "WHERE serverID = ? AND userID = ?")) {
+            for (IngestRecord r : records) {
+                DBUtils.mapParams(member, r.serverName, r.serverId, r.userName, r.userNickname, r.userId, r.userId);
+                member.executeUpdate();
+                DBUtils.mapParams(message, r.serverName, r.serverId, r.channelName, r.channelId, r.userName,
+                        r.userNickname, r.userId, r.content, r.messageId, r.timestamp);
+                message.executeUpdate();
+                DBUtils.mapParams(sent, r.serverId, r.userId);
+                sent.executeUpdate();
+            }
+        }
+    }
+
+    private static long readOffset(Connection conn, String source) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT position FROM ingest_offsets WHERE source = ?")) {
+            ps.setString(1, source);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static void writeOffset(Connection conn, String source, long position) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT OR REPLACE INTO ingest_offsets (source, position) VALUES (?, ?)")) {
+            ps.setString(1, source);
+            ps.setLong(2, position);
+            ps.executeUpdate();
+        }
+    }
+
+    private static void deleteOffset(Connection conn, String source) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM ingest_offsets WHERE source = ?")) {
+            ps.setString(1, source);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Opens the store with immediate transactions and a generous busy timeout, since bot instances and other
+     * aggregators share the file.
+     * @return
+     * @throws SQLException
+     */
+    static Connection connect() throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("transaction_mode", "IMMEDIATE");
+        props.setProperty("busy_timeout", "30000");
+        return DriverManager.getConnection("jdbc:sqlite:" + DBUtils.getDatabaseFile(), props);
+    }
+
+    /**
+     * Parses --key value pairs.
+     * @param args
+     * @return the options, or null if the arguments are malformed
+     */
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length || !OPTIONS.contains(args[i].substring(2)))
+                return null;
+            opts.put(args[i].substring(2), args[i + 1]);
+        }
+        return opts;
+    }
+}
@@ -0,0 +1,246 @@
+package com.electriccapital;
+
+/**
+ * Local append-only log of message events, used in scale-out mode instead of writing to the database directly.
+ * Every bot instance owns its own directory under the log root and is the only writer there:
+ *
+ *     <root>/<instanceID>/partition-<p>-<segment>.log
+ *
+ * Messages are partitioned by guild with Discord's own shard formula, (guildID >> 22) % partitions, so a guild's
+ * messages always stay in order within one partition. Each partition is split into segments; a segment is sealed
+ * once a newer one exists for the same partition, which tells IngestAggregator it can delete it after consuming it.
+ *
+ * A record is [int length][int CRC32 of payload][payload], written with a single write call and flushed to the OS
+ * straight away, so a crashed bot loses nothing it had accepted and a torn tail record is easy to spot.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.*;
+import java.util.zip.CRC32;
+
+public class IngestLog implements Closeable {
+
+    public static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final int HEADER_BYTES = 8;
+    // far bigger than any real record; anything above this is a corrupt length field
+    public static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("partition-(\\d+)-(\\d+)\\.log");
+
+    private final File dir;
+    private final Partition[] partitions;
+    private final AtomicLong appended = new AtomicLong();
+
+    /**
+     * Opens this instance's log. Each partition starts a fresh segment, which seals whatever an earlier run left.
+     * @param root
+     * @param instanceId
+     * @param partitionCount
+     * @throws IOException
+     */
+    public IngestLog(File root, String instanceId, int partitionCount) throws IOException {
+        if (partitionCount < 1)
+            throw new IllegalArgumentException("Need at least one partition");
+        this.dir = new File(root, instanceId);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Couldn't create ingest log directory " + dir);
+        Map<Integer, List<File>> existing = segmentsByPartition(dir);
+        partitions = new Partition[partitionCount];
+        for (int p = 0; p < partitionCount; p++) {
+            List<File> segments = existing.get(p);
+            long nextSegment = segments == null ? 0 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+            partitions[p] = new Partition(dir, p, nextSegment);
+        }
+    }
+
+    /**
+     * Picks a record's partition the same way Discord picks a guild's shard.
+     * @param guildId
+     * @param partitionCount
+     * @return
+     */
+    public static int partitionOf(long guildId, int partitionCount) {
+        return (int) ((guildId >>> 22) % partitionCount);
+    }
+
+    /**
+     * Appends a record to its guild's partition.
+     * @param record
+     * @throws IOException
+     */
+    public void append(IngestRecord record) throws IOException {
+        byte[] payload = record.encode();
+        partitions[partitionOf(record.serverId, partitions.length)].append(payload);
+        appended.incrementAndGet();
+    }
+
+    /**
+     * Number of records appended since the log was opened.
+     * @return
+     */
+    public long appendedCount() {
+        return appended.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Partition partition : partitions)
+            partition.close();
+    }
+
+    /**
+     * The segments of a single partition, oldest first. Appends are serialized per partition, since JDA delivers
+     * events from several threads.
+     */
+    private static class Partition {
+        final File dir;
+        final int id;
+        long segment;
+        FileOutputStream out;
+        long size;
+
+        Partition(File dir, int id, long segment) throws IOException {
+            this.dir = dir;
+            this.id = id;
+            this.segment = segment;
+            open();
+        }
+
+        private void open() throws IOException {
+            File file = new File(dir, segmentName(id, segment));
+            out = new FileOutputStream(file, true);
+            size = file.length();
+        }
+
+        synchronized void append(byte[] payload) throws IOException {
+            if (size >= SEGMENT_BYTES)
+                roll();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+            record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            try {
+                out.write(record.array());
+            } catch (IOException e) {
+                // Part of the record may have made it into the file (disk full, I/O error). Appending after it would
+                // leave a bad record in the middle of the segment, which the aggregator stops at for good; moving to
+                // a new segment leaves it as the torn tail of a sealed segment, which the aggregator skips.
+                try {
+                    roll();
+                } catch (IOException rollFailed) {
+                    // still closed, so the next append fails without writing anything and tries again
+                    e.addSuppressed(rollFailed);
+                }
+                throw e;
+            }
+            size += record.capacity();
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            segment++;
+            open();
+        }
+
+        synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * What one read of a segment returned.
+     */
+    public static class Batch {
+        public final List<IngestRecord> records = new ArrayList<>();
+        // position just past the last complete record read
+        public long end;
+        // true if reading stopped at a record cut short by the end of the file, i.e. a write that never finished
+        public boolean torn;
+        // true if reading stopped at a bad record with more data after it, which no crash of the writer explains
+        public boolean corrupt;
+    }
+
+    /**
+     * Reads up to max records from a segment, starting at a record boundary.
+     * @param segment
+     * @param offset
+     * @param max
+     * @return
+     * @throws IOException
+     */
+    public static Batch read(File segment, long offset, int max) throws IOException {
+        Batch batch = new Batch();
+        batch.end = offset;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            long length = file.length();
+            file.seek(offset);
+            byte[] header = new byte[HEADER_BYTES];
+            while (batch.records.size() < max && batch.end < length) {
+                if (length - batch.end < HEADER_BYTES) {
+                    batch.torn = true;
+                    break;
+                }
+                file.readFully(header);
+                ByteBuffer buf = ByteBuffer.wrap(header);
+                int size = buf.getInt();
+                int checksum = buf.getInt();
+                if (size < 0 || size > MAX_RECORD_BYTES) {
+                    batch.corrupt = true;
+                    break;
+                }
+                if (length - batch.end - HEADER_BYTES < size) {
+                    batch.torn = true;
+                    break;
+                }
+                byte[] payload = new byte[size];
+                file.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    // the last record can fail its checksum if the crash came before all of it reached the disk
+                    if (batch.end + HEADER_BYTES + size == length)
+                        batch.torn = true;
+                    else
+                        batch.corrupt = true;
+                    break;
+                }
+                batch.records.add(IngestRecord.decode(payload));
+                batch.end += HEADER_BYTES + size;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Lists the segment files in an instance directory, grouped by partition and sorted oldest first.
+     * @param instanceDir
+     * @return
+     */
+    public static Map<Integer, List<File>> segmentsByPartition(File instanceDir) {
+        Map<Integer, List<File>> segments = new TreeMap<>();
+        File[] files = instanceDir.listFiles();
+        if (files == null)
+            return segments;
+        for (File file : files) {
+            Matcher m = SEGMENT_NAME.matcher(file.getName());
+            if (m.matches())
+                segments.computeIfAbsent(Integer.parseInt(m.group(1)), k -> new ArrayList<>()).add(file);
+        }
+        for (List<File> list : segments.values())
+            list.sort(Comparator.comparingLong(IngestLog::segmentNumber));
+        return segments;
+    }
+
+    private static long segmentNumber(File segment) {
+        Matcher m = SEGMENT_NAME.matcher(segment.getName());
+        if (!m.matches())
+            throw new IllegalArgumentException("Not a segment file: " + segment);
+        return Long.parseLong(m.group(2));
+    }
+
+    private static String segmentName(int partition, long segment) {
+        return String.format("partition-%d-%08d.log", partition, segment);
+    }
+}
@@ -0,0 +1,97 @@
+package com.electriccapital;
+
+/**
+ * One stored message as it travels through the ingestion log in scale-out mode - everything the messages and
+ * members tables need, so an aggregator can apply it without talking to Discord.
+ */
+
+import net.dv8tion.jda.api.entities.*;
+
+import java.io.*;
+
+public class IngestRecord {
+    final long serverId;
+    final String serverName;
+    final long channelId;
+    final String channelName;
+    final long userId;
+    final String userName;
+    final String userNickname;
+    final String content;
+    final long messageId;
+    final long timestamp;
+
+    IngestRecord(long serverId, String serverName, long channelId, String channelName, long userId, String userName,
+                 String userNickname, String content, long messageId, long timestamp) {
+        this.serverId = serverId;
+        this.serverName = serverName;
+        this.channelId = channelId;
+        this.channelName = channelName;
+        this.userId = userId;
+        this.userName = userName;
+        this.userNickname = userNickname;
+        this.content = content;
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Captures a received message, using the same fields MessageEvent stores directly.
+     * @param msg
+     * @return
+     */
+    public static IngestRecord of(Message msg) {
+        Member member = msg.getMember();
+        User user = msg.getAuthor();
+        return new IngestRecord(member.getGuild().getIdLong(), member.getGuild().getName(),
+                msg.getTextChannel().getIdLong(), msg.getTextChannel().getName(), user.getIdLong(), user.getName(),
+                member.getNickname(), msg.getContentStripped(), msg.getIdLong(),
+                msg.getTimeCreated().toInstant().getEpochSecond());
+    }
+
+    /**
+     * Serializes the record for the log.
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + content.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(serverId);
+        out.writeUTF(serverName);
+        out.writeLong(channelId);
+        out.writeUTF(channelName);
+        out.writeLong(userId);
+        out.writeUTF(userName);
+        out.writeBoolean(userNickname != null);
+        if (userNickname != null)
+            out.writeUTF(userNickname);
+        out.writeUTF(content);
+        out.writeLong(messageId);
+        out.writeLong(timestamp);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads back a record written by encode().
+     * @param payload
+     * @return
+     * @throws IOException
+     */
+    public static IngestRecord decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long serverId = in.readLong();
+        String serverName = in.readUTF();
+        long channelId = in.readLong();
+        String channelName = in.readUTF();
+        long userId = in.readLong();
+        String userName = in.readUTF();
+        String userNickname = in.readBoolean() ? in.readUTF() : null;
+        String content = in.readUTF();
+        long messageId = in.readLong();
+        long timestamp = in.readLong();
+        return new IngestRecord(serverId, serverName, channelId, channelName, userId, userName, userNickname,
+                content, messageId, timestamp);
+    }
+}
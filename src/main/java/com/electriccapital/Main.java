@@ -4,54 +4,197 @@ import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.Activity;
 import org.apache.log4j.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.security.auth.login.LoginException;
 import java.io.*;
 import java.sql.*;
+import java.time.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
     /**
      * Main method, logs bot in and checks if database exists - if not, creates it. Adds listeners and sets status.
+     * The schema is checked and the lookup caches are loaded while JDA logs in, and the listener is registered as
+     * soon as both are done. Paging in recent activity happens afterwards in the background, so it never holds up
+     * the listener.
      * @param args
      * @throws LoginException
-     * @throws SQLException
-     * @throws FileNotFoundException
+     * @throws IOException
      */
-    public static void main(String[] args) throws LoginException, SQLException, FileNotFoundException {
+    public static void main(String[] args) throws LoginException, IOException {
         BasicConfigurator.configure();
+        long bootStart = System.nanoTime();
+        // one shard per process in scale-out mode
+        int[] shard = parseShard(System.getProperty("cryptotrack.shard"));
+        if (System.getProperty("cryptotrack.db") != null)
+            DBUtils.setDatabaseFile(System.getProperty("cryptotrack.db"));
+        CompletableFuture<Void> dbReady = CompletableFuture.runAsync(Main::initDatabase);
+
+        long phaseStart = System.nanoTime();
         // token file
         Scanner sc = new Scanner(new File("src/main/java/com/electriccapital/token.txt"));
         String token = sc.nextLine();
-        System.out.println(token);
-        JDA jda = JDABuilder.createDefault(token).build();
-        boolean hasTable = DBUtils.executeLocalOnly("SELECT * from members");
-        if (!hasTable) {
-            createDatabase();
+        sc.close();
+        JDABuilder builder = JDABuilder.createDefault(token);
+        if (shard != null)
+            builder.useSharding(shard[0], shard[1]);
+        JDA jda = builder.build();
+        // build() only checks the token; the gateway keeps connecting in the background
+        logPhase("JDA build", phaseStart);
+
+        phaseStart = System.nanoTime();
+        dbReady.join();
+        logPhase("waiting on database", phaseStart);
+
+        // Scale-out mode: messages go to a local ingestion log that IngestAggregator applies to the shared store,
+        // and the aggregators take care of maintenance.
+        String logDir = System.getProperty("cryptotrack.ingestLog");
+        if (logDir != null) {
+            String instance = System.getProperty("cryptotrack.instance",
+                    shard == null ? "instance" : "shard-" + shard[0]);
+            int partitions = Integer.getInteger("cryptotrack.partitions", 8);
+            jda.addEventListener(new MessageEvent(new IngestLog(new File(logDir), instance, partitions)));
+            LOGGER.info("Scale-out mode: appending messages to {} as {}", logDir, instance);
+        } else {
+            jda.addEventListener(new MessageEvent());
+            MaintenanceScheduler.start();
         }
-        jda.addEventListener(new MessageEvent());
         jda.getPresence().setActivity(Activity.playing("Type ;help for help!"));
+        Metrics.startReporter(1, TimeUnit.MINUTES);
+        logPhase("startup total", bootStart);
+        CompletableFuture.runAsync(Main::warmRecentActivity);
+    }
+
+    /**
+     * Makes sure the schema exists and the database is in WAL mode, then loads the lookup caches.
+     */
+    private static void initDatabase() {
+        long phaseStart = System.nanoTime();
+        if (!hasSchema()) {
+            createDatabase();
+        } else {
+            // only slow the first time, on a database from before the indexes existed
+            createIndexes();
+        }
+        // WAL lets maintenance and the stats commands read while messages are being inserted; it sticks to the file
+        DBUtils.executeLocalOnly("PRAGMA journal_mode = WAL");
+        logPhase("schema check", phaseStart);
+
+        phaseStart = System.nanoTime();
+        if (!DBCache.load())
+            LOGGER.warn("Couldn't preload caches, falling back to querying the database directly");
+        logPhase("cache preload", phaseStart);
+    }
+
+    /**
+     * Runs the past-week count the stats commands use for every tracked server, so the recent end of the
+     * (serverID, timestamp) index is already paged in when the first ;server-stats comes in. Each count is a
+     * range scan over one server's last week, not a scan of the whole table.
+     */
+    private static void warmRecentActivity() {
+        long phaseStart = System.nanoTime();
+        long weekAgo = OffsetDateTime.now().toInstant().getEpochSecond() - MessageEvent.SECONDS_IN_WEEK;
+        List<Long> servers = new ArrayList<>();
+        Connection conn = DBUtils.getConnection();
+        if (conn == null)
+            return;
+        Statement statement = null;
+        ResultSet rs = null;
+        try {
+            statement = conn.createStatement();
+            rs = statement.executeQuery("SELECT DISTINCT serverID FROM channels");
+            while (rs.next())
+                servers.add(rs.getLong(1));
+        } catch (SQLException e) {
+            DBUtils.logError(e);
+        } finally {
+            DBUtils.close(rs, statement, conn);
+        }
+        for (long server : servers) {
+            DBUtils.getIntResult("SELECT COUNT(*) FROM messages WHERE serverID = " + server
+                    + " AND timestamp >= " + weekAgo, 1);
+        }
+        logPhase("activity warm-up (background)", phaseStart);
     }
 
     /**
-     * Runs some simple SQL queries to create the DB.
-     * @throws SQLException
+     * Checks sqlite_master for the bot's tables, which is instant no matter how big the tables are.
+     * @return true if all the tables exist
      */
-    private static void createDatabase() throws SQLException{
+    private static boolean hasSchema() {
+        return DBUtils.getIntResult("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' " +
+                "AND name IN ('messages', 'channels', 'members')", 1) == 3;
+    }
+
+    /**
+     * Parses the cryptotrack.shard property.
+     * @param shard "<id>/<total>", e.g. 0/4
+     * @return shard id and total, or null if the property isn't set
+     * @throws IllegalArgumentException if the value isn't a valid shard
+     */
+    static int[] parseShard(String shard) {
+        if (shard == null)
+            return null;
+        String[] parts = shard.trim().split("/");
+        try {
+            if (parts.length == 2) {
+                int id = Integer.parseInt(parts[0]);
+                int total = Integer.parseInt(parts[1]);
+                if (id >= 0 && id < total)
+                    return new int[]{id, total};
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("cryptotrack.shard must be <id>/<total> with 0 <= id < total, e.g. 0/4, "
+                + "but was \"" + shard + "\"");
+    }
+
+    /**
+     * Logs how long a startup phase took.
+     * @param phase
+     * @param startNanos
+     */
+    private static void logPhase(String phase, long startNanos) {
+        LOGGER.info("Startup: {} took {} ms", phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Runs some simple SQL queries to create the DB. Tables that already exist are left alone.
+     */
+    static void createDatabase() {
         String q1, q2, q3;
          /* messages table stores server, channel, user, and message info.
          channels table stores server and channel info.
          members table stores server and member info. separate entries are stores for the same Discord user in
          different servers. */
-        q1 = "CREATE TABLE messages (serverName VARCHAR(25), serverID BIGINT, channelName VARCHAR(25)," +
+        q1 = "CREATE TABLE IF NOT EXISTS messages (serverName VARCHAR(25), serverID BIGINT, channelName VARCHAR(25)," +
                 " channelID BIGINT, userName VARCHAR(25), userNickname VARCHAR(25), userID BIGINT, content VARCHAR(100), " +
                 "messageID BIGINT, timestamp BIGINT)";
-        q2 = "CREATE TABLE channels (serverName VARCHAR(25), serverID BIGINT," +
+        q2 = "CREATE TABLE IF NOT EXISTS channels (serverName VARCHAR(25), serverID BIGINT," +
                 " channelName VARCHAR(25), channelID BIGINT)";
-        q3 = "CREATE TABLE members (serverName VARCHAR(25), serverID BIGINT," +
+        q3 = "CREATE TABLE IF NOT EXISTS members (serverName VARCHAR(25), serverID BIGINT," +
                 " userName VARCHAR(25), userNickname VARCHAR(25), userID BIGINT, messagesSent BIGINT)";
-        DBUtils.executeLocalOnly(q1, q2, q3);
+        // has to be set before the first table exists; lets MaintenanceScheduler give free pages back a few at a time
+        DBUtils.executeLocalOnly("PRAGMA auto_vacuum = INCREMENTAL", q1, q2, q3);
+        createIndexes();
+    }
+
+    /**
+     * Indexes the past-week lookups of ;channel-stats and ;server-stats, which would otherwise scan the whole
+     * messages table.
+     */
+    static void createIndexes() {
+        DBUtils.executeLocalOnly(
+                "CREATE INDEX IF NOT EXISTS messages_channel_time ON messages (channelID, timestamp)",
+                "CREATE INDEX IF NOT EXISTS messages_server_time ON messages (serverID, timestamp)");
     }
 
 }
@@ -0,0 +1,290 @@
+package com.electriccapital;
+
+/**
+ * Background upkeep for the SQLite database: WAL truncation, planner statistics, incremental vacuum, integrity
+ * checks and snapshot backups. Nothing else maintains activity.db, and with constant inserts into messages and
+ * DELETEs from channels it fragments and the planner never gets statistics.
+ *
+ * The scheduler wakes up once a minute and runs at most one due job, and only when the bot is quiet - fewer than
+ * IDLE_MESSAGES_PER_TICK messages since the last tick and their average ingest latency within LATENCY_BUDGET_MILLIS.
+ * A job that has been put off for MAX_DEFER times its interval runs anyway so a busy server can't starve it.
+ * Each job's duration (and pages reclaimed by the vacuum) ends up in Metrics.
+ *
+ * The analyze, integrity check and backup jobs read the whole database in one transaction. In rollback-journal
+ * mode that locks out every insert for the whole run, and DBUtils drops a message whose insert times out, so these
+ * jobs only run when the database is in WAL mode, where readers and writers don't block each other.
+ */
+
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MaintenanceScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    public static final long TICK_MINUTES = 1;
+    public static final int IDLE_MESSAGES_PER_TICK = 30;
+    public static final double LATENCY_BUDGET_MILLIS = 50;
+    public static final int MAX_DEFER = 4;
+
+    // Incremental vacuum frees this many pages per step, pausing in between so ingestion can get the write lock.
+    public static final int VACUUM_STEP_PAGES = 200;
+    public static final long VACUUM_STEP_PAUSE_MILLIS = 50;
+
+    // How long the TRUNCATE checkpoint waits for readers and writers before giving up. It holds the write lock
+    // meanwhile, so this stays well under the 3 s inserts wait for it.
+    public static final int TRUNCATE_WAIT_MILLIS = 500;
+
+    // rows sampled per index by ANALYZE, the value the SQLite docs suggest alongside PRAGMA optimize
+    public static final int ANALYSIS_LIMIT = 400;
+    private static final String SKIPPED_NOT_WAL = "skipped, database isn't in WAL mode";
+
+    private static ScheduledExecutorService executor;
+    private static final List<Job> JOBS = new ArrayList<>();
+    private static long lastMessagesSeen;
+    private static long lastIngestNanos;
+
+    /**
+     * A periodic maintenance task and when it last ran.
+     */
+    private static class Job {
+        final String name;
+        final long intervalMillis;
+        final Callable<String> task;
+        long lastRun;
+
+        Job(String name, long interval, TimeUnit unit, Callable<String> task) {
+            this.name = name;
+            this.intervalMillis = unit.toMillis(interval);
+            this.task = task;
+            // due straight away, but not overdue, so the first runs still wait for a quiet moment
+            this.lastRun = System.currentTimeMillis() - intervalMillis;
+        }
+    }
+
+    /**
+     * Starts the scheduler on a daemon thread. Calling this more than once does nothing.
+     */
+    public static synchronized void start() {
+        if (executor != null)
+            return;
+        File snapshot = snapshotFile();
+        JOBS.add(new Job("checkpoint", 5, TimeUnit.MINUTES, MaintenanceScheduler::checkpoint));
+        JOBS.add(new Job("optimize", 1, TimeUnit.HOURS, MaintenanceScheduler::optimize));
+        JOBS.add(new Job("incremental-vacuum", 1, TimeUnit.HOURS, MaintenanceScheduler::incrementalVacuum));
+        JOBS.add(new Job("integrity-check", 1, TimeUnit.DAYS, MaintenanceScheduler::integrityCheck));
+        JOBS.add(new Job("backup", 1, TimeUnit.DAYS, () -> backup(snapshot)));
+        lastMessagesSeen = Metrics.MESSAGES_SEEN.get();
+        lastIngestNanos = Metrics.INGEST_NANOS.get();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(MaintenanceScheduler::tick, TICK_MINUTES, TICK_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Picks the most overdue job and runs it if the bot is idle, or if the job can't be put off any longer.
+     */
+    private static void tick() {
+        long seen = Metrics.MESSAGES_SEEN.get();
+        long nanos = Metrics.INGEST_NANOS.get();
+        boolean idle = seen - lastMessagesSeen < IDLE_MESSAGES_PER_TICK
+                && Metrics.ingestLatencyMillis(lastMessagesSeen, lastIngestNanos) <= LATENCY_BUDGET_MILLIS;
+        lastMessagesSeen = seen;
+        lastIngestNanos = nanos;
+
+        long now = System.currentTimeMillis();
+        Job next = null;
+        double nextOverdue = 1;
+        for (Job job : JOBS) {
+            double overdue = (now - job.lastRun) / (double) job.intervalMillis;
+            if (overdue >= nextOverdue) {
+                next = job;
+                nextOverdue = overdue;
+            }
+        }
+        if (next == null || (!idle && nextOverdue < MAX_DEFER))
+            return;
+
+        long start = System.currentTimeMillis();
+        try {
+            String detail = next.task.call();
+            long millis = System.currentTimeMillis() - start;
+            Metrics.recordJob(next.name, millis, detail);
+            LOGGER.info("Maintenance job {} took {} ms{}", next.name, millis, detail == null ? "" : " (" + detail + ")");
+        } catch (Exception e) {
+            LOGGER.error("Maintenance job " + next.name + " failed", e);
+        } finally {
+            // failed jobs wait a full interval too, rather than being retried every tick
+            next.lastRun = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Shrinks the WAL back to nothing. SQLite's own checkpoints only let it reuse the WAL from the start, never make
+     * it smaller, so after the long read snapshots of the backup and integrity check it stays at its peak size.
+     * A PASSIVE checkpoint first copies everything into the database without blocking writers; the TRUNCATE
+     * checkpoint after it holds the write lock, but only has to copy what came in since.
+     * @return size of the WAL before and after
+     * @throws SQLException
+     */
+    public static String checkpoint() throws SQLException {
+        File wal = new File(DBUtils.getDatabaseFile() + "-wal");
+        try (Connection conn = connect(); Statement statement = conn.createStatement()) {
+            if (!isWal(statement))
+                return SKIPPED_NOT_WAL;
+            long before = wal.length();
+            statement.executeQuery("PRAGMA wal_checkpoint(PASSIVE)").close();
+            statement.execute("PRAGMA busy_timeout = " + TRUNCATE_WAIT_MILLIS);
+            try (ResultSet rs = statement.executeQuery("PRAGMA wal_checkpoint(TRUNCATE)")) {
+                if (rs.getInt(1) != 0)
+                    return "busy, WAL left at " + before + " bytes";
+            }
+            return "WAL " + before + " -> " + wal.length() + " bytes";
+        }
+    }
+
+    /**
+     * Refreshes planner statistics. The very first time there are no statistics at all, so ANALYZE is run;
+     * after that PRAGMA optimize only re-analyzes tables whose statistics have gone stale. ANALYZE holds the write
+     * lock while it runs even in WAL mode, so analysis_limit keeps it to a sample of each index instead of the
+     * whole table.
+     * @return
+     * @throws SQLException
+     */
+    public static String optimize() throws SQLException {
+        try (Connection conn = connect(); Statement statement = conn.createStatement()) {
+            if (!isWal(statement))
+                return SKIPPED_NOT_WAL;
+            statement.execute("PRAGMA analysis_limit = " + ANALYSIS_LIMIT);
+            boolean hasStats;
+            try (ResultSet rs = statement.executeQuery(
+                    "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'sqlite_stat1'")) {
+                hasStats = rs.getInt(1) != 0;
+            }
+            if (!hasStats) {
+                statement.execute("ANALYZE");
+                return "analyze";
+            }
+            statement.execute("PRAGMA optimize");
+            return "optimize";
+        }
+    }
+
+    /**
+     * Gives free pages back to the filesystem a few at a time, stopping early if messages start coming in.
+     * Only works on databases created with auto_vacuum = INCREMENTAL; switching an existing database over takes a
+     * full VACUUM, which would lock out ingestion for too long to do from here.
+     * @return pages reclaimed
+     * @throws SQLException
+     * @throws InterruptedException
+     */
+    public static String incrementalVacuum() throws SQLException, InterruptedException {
+        try (Connection conn = connect(); Statement statement = conn.createStatement()) {
+            if (pragmaInt(statement, "auto_vacuum") != 2)
+                return "skipped, auto_vacuum isn't INCREMENTAL";
+            long startSeen = Metrics.MESSAGES_SEEN.get();
+            long startNanos = Metrics.INGEST_NANOS.get();
+            int before = pragmaInt(statement, "freelist_count");
+            int free = before;
+            while (free > 0) {
+                // incremental_vacuum frees one page per step of the statement; execute() only takes the first step,
+                // executeUpdate() runs it to completion
+                statement.executeUpdate("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")");
+                free = pragmaInt(statement, "freelist_count");
+                if (Metrics.MESSAGES_SEEN.get() - startSeen >= IDLE_MESSAGES_PER_TICK
+                        || Metrics.ingestLatencyMillis(startSeen, startNanos) > LATENCY_BUDGET_MILLIS)
+                    break;
+                Thread.sleep(VACUUM_STEP_PAUSE_MILLIS);
+            }
+            int reclaimed = before - free;
+            Metrics.PAGES_RECLAIMED.addAndGet(reclaimed);
+            return reclaimed + " pages reclaimed, " + free + " left";
+        }
+    }
+
+    /**
+     * Runs PRAGMA quick_check, which catches corrupt pages and records without the cost of cross-checking every
+     * index like integrity_check does.
+     * @return
+     * @throws SQLException
+     */
+    public static String integrityCheck() throws SQLException {
+        List<String> problems = new ArrayList<>();
+        try (Connection conn = connect(); Statement statement = conn.createStatement()) {
+            if (!isWal(statement))
+                return SKIPPED_NOT_WAL;
+            try (ResultSet rs = statement.executeQuery("PRAGMA quick_check")) {
+                while (rs.next())
+                    problems.add(rs.getString(1));
+            }
+        }
+        if (problems.size() == 1 && "ok".equals(problems.get(0)))
+            return "ok";
+        LOGGER.error("Database integrity check failed: {}", problems);
+        return problems.size() + " problems";
+    }
+
+    /**
+     * Copies the live database to a snapshot file with VACUUM INTO, which reads everything from one consistent
+     * snapshot in a single read transaction. It only runs in WAL mode, where ingestion carries on while it reads.
+     * (sqlite-jdbc's "backup to" drives the backup API a hundred pages at a time and starts over whenever another
+     * connection writes, so under steady ingestion it never finishes.) The copy goes to a temporary file first and
+     * is then moved over the old snapshot, so a crash halfway through never leaves a broken snapshot behind.
+     * @param snapshot
+     * @return size of the snapshot
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static String backup(File snapshot) throws SQLException, IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+        try (Connection conn = connect(); Statement statement = conn.createStatement()) {
+            if (!isWal(statement))
+                return SKIPPED_NOT_WAL;
+            try (PreparedStatement ps = conn.prepareStatement("VACUUM INTO ?")) {
+                ps.setString(1, tmp.getPath());
+                ps.execute();
+            }
+        }
+        if (!tmp.exists())
+            throw new IOException("Backup didn't produce " + tmp);
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return snapshot.length() + " bytes";
+    }
+
+    /**
+     * Where backups of the current database go, e.g. activity.db -> activity-snapshot.db.
+     * @return
+     */
+    public static File snapshotFile() {
+        String db = DBUtils.getDatabaseFile();
+        return new File(db.endsWith(".db") ? db.substring(0, db.length() - 3) + "-snapshot.db" : db + "-snapshot");
+    }
+
+    private static Connection connect() throws SQLException {
+        Connection conn = DBUtils.getConnection();
+        if (conn == null)
+            throw new SQLException("Couldn't connect to database");
+        return conn;
+    }
+
+    private static boolean isWal(Statement statement) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("PRAGMA journal_mode")) {
+            return "wal".equalsIgnoreCase(rs.getString(1));
+        }
+    }
+
+    private static int pragmaInt(Statement statement, String pragma) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("PRAGMA " + pragma)) {
+            return rs.getInt(1);
+        }
+    }
+}
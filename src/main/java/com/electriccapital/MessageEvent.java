@@ -6,6 +6,7 @@ import net.dv8tion.jda.api.entities.*;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
 import net.dv8tion.jda.api.exceptions.RateLimitedException;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import org.slf4j.*;
 import org.sqlite.core.*;
 
 /**
@@ -13,13 +14,43 @@ import org.sqlite.core.*;
  * or taking a command and giving the appropriate response.
  */
 
+import java.io.*;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class MessageEvent extends ListenerAdapter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageEvent.class);
 
     public static final int SECONDS_IN_WEEK = 604800;
+    public static final String[] COMMANDS = {"help", "add", "add-full-server", "remove-full-server", "remove",
+            "channel-stats", "server-stats", "user-stats", "show-channels"};
+
+    // Commands hit the database and Discord's REST API, so each user and each server only gets so many of them.
+    private static final RateLimiter USER_LIMITER = new RateLimiter(5, 3, TimeUnit.SECONDS);
+    private static final RateLimiter GUILD_LIMITER = new RateLimiter(20, 500, TimeUnit.MILLISECONDS);
+    // A throttled user or server is told to slow down at most once per cooldown, so the notices can't become spam.
+    private static final RateLimiter USER_NOTICES = new RateLimiter(1, 30, TimeUnit.SECONDS);
+    private static final RateLimiter GUILD_NOTICES = new RateLimiter(1, 30, TimeUnit.SECONDS);
+
+    // In scale-out mode messages go to the local ingestion log instead of the database; null otherwise.
+    private final IngestLog ingestLog;
+
+    /**
+     * Listener that writes messages straight to the database.
+     */
+    public MessageEvent() {
+        this(null);
+    }
+
+    /**
+     * Listener that appends messages to an ingestion log, for IngestAggregator to apply to the store.
+     * @param ingestLog
+     */
+    public MessageEvent(IngestLog ingestLog) {
+        this.ingestLog = ingestLog;
+    }
 
     /**
      * Listener method - the brunt of the flow control in the class. Checks if the message is a command or not,
@@ -34,37 +65,36 @@ public class MessageEvent extends ListenerAdapter {
         String content = msg.getContentStripped().toLowerCase();
         if (content.startsWith(";")) {
             content = content.substring(1);
+            if (isAnyCommand(content) && !acquireCommand(msg)) {
+                return;
+            }
             if (isCommand(content, "help")) {
                 sendHelp(msg);
             } else if (isCommand(content, "add")) {
                 if (!member.hasPermission(Permission.ADMINISTRATOR)) {
-                    (new MessageBuilder())
-                            .append("Only administrators can use this command.")
-                            .sendTo(msg.getChannel()).queue();
+                    Replies.send((new MessageBuilder())
+                            .append("Only administrators can use this command."), msg.getChannel());
                     return;
                 }
                 addChannels(msg);
             } else if (isCommand(content, "add-full-server")) {
                 if (!member.hasPermission(Permission.ADMINISTRATOR)) {
-                    (new MessageBuilder())
-                            .append("Only administrators can use this command.")
-                            .sendTo(msg.getChannel()).queue();
+                    Replies.send((new MessageBuilder())
+                            .append("Only administrators can use this command."), msg.getChannel());
                     return;
                 }
                 addServer(msg.getGuild(), msg.getChannel());
             } else if (isCommand(content, "remove-full-server")) {
                 if (!member.hasPermission(Permission.ADMINISTRATOR)) {
-                    (new MessageBuilder())
-                            .append("Only administrators can use this command.")
-                            .sendTo(msg.getChannel()).queue();
+                    Replies.send((new MessageBuilder())
+                            .append("Only administrators can use this command."), msg.getChannel());
                     return;
                 }
                 removeAllChannels(msg.getGuild(), msg.getChannel());
             } else if (isCommand(content, "remove")) {
                 if (!member.hasPermission(Permission.ADMINISTRATOR)) {
-                    (new MessageBuilder())
-                            .append("Only administrators can use this command.")
-                            .sendTo(msg.getChannel()).queue();
+                    Replies.send((new MessageBuilder())
+                            .append("Only administrators can use this command."), msg.getChannel());
                     return;
                 }
                 removeChannels(msg);
@@ -89,15 +119,38 @@ public class MessageEvent extends ListenerAdapter {
      * @param e
      */
     private void messageReceived(GuildMessageReceivedEvent e) {
+        long start = System.nanoTime();
+        try {
+            storeMessage(e);
+        } finally {
+            Metrics.recordIngest(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Stores a non-command message if its channel is on the watchlist.
+     * @param e
+     */
+    private void storeMessage(GuildMessageReceivedEvent e) {
         Message msg = e.getMessage();
         User user = msg.getAuthor();
         Member member = msg.getMember();
         if (!DBUtils.containsChannel(msg.getTextChannel()))
             return;
-        if (!DBUtils.containsUser(user))
+        if (ingestLog != null) {
+            try {
+                ingestLog.append(IngestRecord.of(msg));
+            } catch (IOException ex) {
+                LOGGER.error("Couldn't append message to the ingestion log", ex);
+            }
+            return;
+        }
+        if (!DBUtils.containsUser(user)) {
             DBUtils.executePrepared("INSERT INTO members (serverName, serverID, userName, userNickname, userID, messagesSent)" +
                             "VALUES (?, ?, ?, ?, ?, ?)", member.getGuild().getName(),
                     member.getGuild().getIdLong(), user.getName(), member.getNickname(), member.getIdLong(), 0);
+            DBCache.addUser(user.getIdLong());
+        }
         DBUtils.executePrepared("INSERT INTO messages (serverName, serverID, channelName, " +
                         "channelID, userName, userNickname, userID, content," +
                         "messageID, timestamp) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
@@ -120,7 +173,7 @@ public class MessageEvent extends ListenerAdapter {
             messageBuilder.append("Channel ");
             messageBuilder.append(channel);
             messageBuilder.append(" is not in the watchlist!");
-            messageBuilder.sendTo(toSend).queue();
+            Replies.send(messageBuilder, toSend);
             return;
         }
         int totalNum = DBUtils.getIntResult("SELECT COUNT(*) FROM messages WHERE channelID = " +
@@ -131,7 +184,7 @@ public class MessageEvent extends ListenerAdapter {
                         channel.getIdLong() + " AND timestamp >= " + (OffsetDateTime.now().toInstant().getEpochSecond() - SECONDS_IN_WEEK),
                 1);
         messageBuilder.append(weekNum);
-        messageBuilder.sendTo(toSend).queue();
+        Replies.send(messageBuilder, toSend);
 
     }
 
@@ -150,7 +203,7 @@ public class MessageEvent extends ListenerAdapter {
                         guild.getIdLong() + " AND timestamp >= " + (OffsetDateTime.now().toInstant().getEpochSecond() - SECONDS_IN_WEEK),
                 1);
         messageBuilder.append(weekNum);
-        messageBuilder.sendTo(toSend).queue();
+        Replies.send(messageBuilder, toSend);
     }
 
     /**
@@ -175,7 +228,7 @@ public class MessageEvent extends ListenerAdapter {
                 } while(rs.next());
             }
 
-            messageBuilder.sendTo(toSend).queue();
+            Replies.send(messageBuilder, toSend);
             DBUtils.close(rs, statement, conn);
         }
         catch(SQLException e){
@@ -199,7 +252,7 @@ public class MessageEvent extends ListenerAdapter {
             }
         } catch (Exception e) {
             messageBuilder.append("You need to provide a valid and tracked user ID!");
-            messageBuilder.sendTo(toSend).queue();
+            Replies.send(messageBuilder, toSend);
             return;
         }
 
@@ -219,7 +272,7 @@ public class MessageEvent extends ListenerAdapter {
                 + messagesSentOverallLastWeek);
         if (msg.getGuild().retrieveMemberById(userId).complete() == null) {
             messageBuilder.append("\nThis user is not in the server!");
-            messageBuilder.sendTo(toSend).queue();
+            Replies.send(messageBuilder, toSend);
             return;
         }
         int messagesSentInServer = DBUtils.getIntResult("SELECT COUNT(*) from messages where userID = "
@@ -231,7 +284,7 @@ public class MessageEvent extends ListenerAdapter {
                 1);
         messageBuilder.append("\nNumber of tracked messages in this server in the past week: "
                 + messagesSentInServerLastWeek);
-        messageBuilder.sendTo(toSend).queue();
+        Replies.send(messageBuilder, toSend);
     }
 
     /**
@@ -258,10 +311,10 @@ public class MessageEvent extends ListenerAdapter {
                     .append(";channel-stats: Lists stats about a channel.\n")
                     .append(";server-stats: Lists stats about a server.\n")
                     .append(";show-channels: Lists all channels tracked in a server.");
-            mBuilder.sendTo(channel).queue();
+            Replies.send(mBuilder, channel);
         } catch (RateLimitedException e) {
             mBuilder.append("Oops - an error occurred. Please try again.");
-            mBuilder.sendTo(msg.getChannel()).queue();
+            Replies.send(mBuilder, msg.getChannel());
         }
 
 
@@ -277,14 +330,14 @@ public class MessageEvent extends ListenerAdapter {
         MessageBuilder mBuilder = new MessageBuilder();
         if (channels.size() == 0) {
             mBuilder.append("Your server has no text channels!");
-            mBuilder.sendTo(currentChannel).queue();
+            Replies.send(mBuilder, currentChannel);
             return;
         }
 
         for (TextChannel channel : channels) {
             addChannelToDB(channel, mBuilder);
         }
-        mBuilder.sendTo(currentChannel).queue();
+        Replies.send(mBuilder, currentChannel);
     }
 
     /**
@@ -297,14 +350,14 @@ public class MessageEvent extends ListenerAdapter {
         MessageBuilder mBuilder = new MessageBuilder();
         if (channels.size() == 0) {
             mBuilder.append("Your server has no text channels!");
-            mBuilder.sendTo(currentChannel).queue();
+            Replies.send(mBuilder, currentChannel);
             return;
         }
 
         for (TextChannel channel : channels) {
             removeChannelFromDB(channel, mBuilder);
         }
-        mBuilder.sendTo(currentChannel).queue();
+        Replies.send(mBuilder, currentChannel);
     }
 
     /**
@@ -317,7 +370,7 @@ public class MessageEvent extends ListenerAdapter {
         MessageBuilder mBuilder = new MessageBuilder();
         if (channels.size() == 0) {
             mBuilder.append("Please specify at least one channel.");
-            mBuilder.sendTo(currentChannel).queue();
+            Replies.send(mBuilder, currentChannel);
             return;
         }
 
@@ -325,7 +378,7 @@ public class MessageEvent extends ListenerAdapter {
             addChannelToDB(channel, mBuilder);
         }
 
-        mBuilder.sendTo(currentChannel).queue();
+        Replies.send(mBuilder, currentChannel);
     }
 
     /**
@@ -338,13 +391,13 @@ public class MessageEvent extends ListenerAdapter {
         MessageBuilder mBuilder = new MessageBuilder();
         if (channels.size() == 0) {
             mBuilder.append("Please specify at least one channel.");
-            mBuilder.sendTo(currentChannel).queue();
+            Replies.send(mBuilder, currentChannel);
             return;
         }
         for (TextChannel channel : channels) {
             removeChannelFromDB(channel, mBuilder);
         }
-        mBuilder.sendTo(currentChannel).queue();
+        Replies.send(mBuilder, currentChannel);
     }
 
 
@@ -363,6 +416,7 @@ public class MessageEvent extends ListenerAdapter {
         DBUtils.executePrepared("INSERT INTO channels (serverName, serverID, channelName, channelID)" +
                         "VALUES (?, ?, ?, ?)", channel.getGuild().getName(),
                 channel.getGuild().getIdLong(), channel.getName(), channel.getIdLong());
+        DBCache.addChannel(channel.getIdLong());
         mBuilder.append("Channel ");
         mBuilder.append(channel);
         mBuilder.append(" has been successfully added to the watchlist!\n");
@@ -382,6 +436,7 @@ public class MessageEvent extends ListenerAdapter {
             return;
         }
         DBUtils.executeLocalOnly("DELETE FROM channels WHERE channelID = " + channel.getIdLong());
+        DBCache.removeChannel(channel.getIdLong());
         mBuilder.append("Channel ");
         mBuilder.append(channel);
         mBuilder.append(" has been successfully removed from the watchlist!\n");
@@ -397,4 +452,51 @@ public class MessageEvent extends ListenerAdapter {
         return text.startsWith(command + " ") || text.equals(command);
     }
 
+    /**
+     * Utility method to check if a given string is any of the bot's commands.
+     * @param text
+     * @return
+     */
+    private boolean isAnyCommand(String text) {
+        for (String command : COMMANDS)
+            if (isCommand(text, command)) return true;
+        return false;
+    }
+
+    /**
+     * Takes a command token from both the author's and the server's rate limits, and tells the author to slow down
+     * if either limit has been hit.
+     * @param msg
+     * @return false if either limit has been hit
+     */
+    private boolean acquireCommand(Message msg) {
+        long userId = msg.getAuthor().getIdLong();
+        long guildId = msg.getGuild().getIdLong();
+        if (!USER_LIMITER.tryAcquire(userId)) {
+            throttled(msg, USER_NOTICES, userId);
+            return false;
+        }
+        if (!GUILD_LIMITER.tryAcquire(guildId)) {
+            // the command isn't going to run, so it shouldn't count against the author either
+            USER_LIMITER.refund(userId);
+            throttled(msg, GUILD_NOTICES, guildId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts a throttled command and sends the slow-down notice, unless this user or server got one recently.
+     * @param msg
+     * @param notices
+     * @param key
+     */
+    private void throttled(Message msg, RateLimiter notices, long key) {
+        Metrics.THROTTLED_COMMANDS.incrementAndGet();
+        if (!notices.tryAcquire(key))
+            return;
+        Replies.send((new MessageBuilder())
+                .append("Slow down! Too many commands are being sent, please try again shortly."), msg.getChannel());
+    }
+
 }
@@ -0,0 +1,101 @@
+package com.electriccapital;
+
+/**
+ * Process-wide counters for the bot. Everything here is a plain atomic so it can be bumped from JDA's event
+ * threads without contention, and a summary is periodically written to the log.
+ */
+
+import org.slf4j.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Metrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    // commands rejected by the per-user or per-server rate limiter
+    public static final AtomicLong THROTTLED_COMMANDS = new AtomicLong();
+    // replies dropped because an identical one was already pending for the same channel
+    public static final AtomicLong COALESCED_REPLIES = new AtomicLong();
+    // replies handed to JDA's REST queue that haven't completed or failed yet
+    public static final AtomicInteger PENDING_REPLIES = new AtomicInteger();
+    public static final AtomicLong FAILED_REPLIES = new AtomicLong();
+
+    // non-command messages handed to the ingest path, and the total time spent on them; averages are taken over a
+    // window by comparing two readings, so a window with no messages reads as zero latency instead of a stale value
+    public static final AtomicLong MESSAGES_SEEN = new AtomicLong();
+    public static final AtomicLong INGEST_NANOS = new AtomicLong();
+
+    // database maintenance: pages given back by incremental vacuum, and the last run of each job
+    public static final AtomicLong PAGES_RECLAIMED = new AtomicLong();
+    private static final ConcurrentHashMap<String, String> JOB_RUNS = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService reporter;
+    private static long reportedSeen;
+    private static long reportedNanos;
+
+    /**
+     * Records one message going through the ingest path.
+     * @param nanos how long it took
+     */
+    public static void recordIngest(long nanos) {
+        INGEST_NANOS.addAndGet(nanos);
+        MESSAGES_SEEN.incrementAndGet();
+    }
+
+    /**
+     * Average ingest latency in milliseconds since an earlier reading of MESSAGES_SEEN and INGEST_NANOS.
+     * @param seenBefore
+     * @param nanosBefore
+     * @return 0 if no messages came in since
+     */
+    public static double ingestLatencyMillis(long seenBefore, long nanosBefore) {
+        long seen = MESSAGES_SEEN.get() - seenBefore;
+        return seen <= 0 ? 0 : (INGEST_NANOS.get() - nanosBefore) / 1e6 / seen;
+    }
+
+    /**
+     * Records a finished maintenance job.
+     * @param job
+     * @param millis
+     * @param detail free-form result, e.g. pages reclaimed
+     */
+    public static void recordJob(String job, long millis, String detail) {
+        JOB_RUNS.put(job, millis + "ms" + (detail == null ? "" : "/" + detail));
+    }
+
+    /**
+     * Builds a one-line summary of all counters. The ingest latency is the average since the previous summary.
+     * @return
+     */
+    public static synchronized String summary() {
+        double latency = ingestLatencyMillis(reportedSeen, reportedNanos);
+        reportedSeen = MESSAGES_SEEN.get();
+        reportedNanos = INGEST_NANOS.get();
+        return "throttledCommands=" + THROTTLED_COMMANDS.get()
+                + " coalescedReplies=" + COALESCED_REPLIES.get()
+                + " pendingReplies=" + PENDING_REPLIES.get()
+                + " failedReplies=" + FAILED_REPLIES.get()
+                + " messagesSeen=" + MESSAGES_SEEN.get()
+                + String.format(" ingestLatencyAvg=%.2fms", latency)
+                + " pagesReclaimed=" + PAGES_RECLAIMED.get()
+                + " maintenanceJobs=" + new TreeMap<>(JOB_RUNS);
+    }
+
+    /**
+     * Starts logging the summary at a fixed interval on a daemon thread. Calling this more than once does nothing.
+     * @param period
+     * @param unit
+     */
+    public static synchronized void startReporter(long period, TimeUnit unit) {
+        if (reporter != null)
+            return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> LOGGER.info("Metrics: {}", summary()), period, period, unit);
+    }
+}
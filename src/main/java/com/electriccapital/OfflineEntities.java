@@ -0,0 +1,124 @@
+package com.electriccapital;
+
+/**
+ * Stand-ins for the JDA entities, so a GuildMessageReceivedEvent can be built and handed to MessageEvent without
+ * a connection to Discord. The JDA entities are all interfaces, so each stand-in is a dynamic proxy answering the
+ * handful of getters the ingest path uses - anything else throws, which makes it obvious when the listener starts
+ * depending on something the offline tools don't provide.
+ */
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.time.*;
+import java.util.*;
+
+public class OfflineEntities {
+
+    private static final JDA JDA_STUB = stub(JDA.class, "JDA", new HashMap<>());
+
+    /**
+     * Builds a received-message event as if it came from Discord.
+     * @param responseNumber
+     * @param guildId
+     * @param channelId
+     * @param userId
+     * @param messageId
+     * @param content
+     * @param timestamp epoch millis
+     * @return
+     */
+    public static GuildMessageReceivedEvent messageEvent(long responseNumber, long guildId, long channelId,
+                                                         long userId, long messageId, String content, long timestamp) {
+        Map<String, Object> guildProps = new HashMap<>();
+        guildProps.put("getIdLong", guildId);
+        guildProps.put("getName", "guild-" + guildId);
+        guildProps.put("getJDA", JDA_STUB);
+        Guild guild = stub(Guild.class, "Guild:" + guildId, guildProps);
+
+        Map<String, Object> channelProps = new HashMap<>();
+        channelProps.put("getIdLong", channelId);
+        channelProps.put("getName", "channel-" + channelId);
+        channelProps.put("getGuild", guild);
+        channelProps.put("getType", ChannelType.TEXT);
+        channelProps.put("getJDA", JDA_STUB);
+        TextChannel channel = stub(TextChannel.class, "TextChannel:" + channelId, channelProps);
+
+        Map<String, Object> userProps = new HashMap<>();
+        userProps.put("getIdLong", userId);
+        userProps.put("getName", "user-" + userId);
+        userProps.put("isBot", false);
+        userProps.put("getJDA", JDA_STUB);
+        User user = stub(User.class, "User:" + userId, userProps);
+
+        Map<String, Object> memberProps = new HashMap<>();
+        memberProps.put("getIdLong", userId);
+        memberProps.put("getUser", user);
+        memberProps.put("getGuild", guild);
+        memberProps.put("getNickname", null);
+        memberProps.put("getEffectiveName", "user-" + userId);
+        memberProps.put("getJDA", JDA_STUB);
+        Member member = stub(Member.class, "Member:" + userId, memberProps);
+
+        Map<String, Object> messageProps = new HashMap<>();
+        messageProps.put("getIdLong", messageId);
+        messageProps.put("getAuthor", user);
+        messageProps.put("getMember", member);
+        messageProps.put("getGuild", guild);
+        messageProps.put("getTextChannel", channel);
+        messageProps.put("getChannel", channel);
+        messageProps.put("getChannelType", ChannelType.TEXT);
+        messageProps.put("isFromGuild", true);
+        messageProps.put("isWebhookMessage", false);
+        messageProps.put("getContentRaw", content);
+        messageProps.put("getContentDisplay", content);
+        messageProps.put("getContentStripped", content);
+        messageProps.put("getTimeCreated", OffsetDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneOffset.UTC));
+        messageProps.put("getJDA", JDA_STUB);
+        Message message = stub(Message.class, "Message:" + messageId, messageProps);
+
+        return new GuildMessageReceivedEvent(JDA_STUB, responseNumber, message);
+    }
+
+    /**
+     * Creates a proxy for an interface that answers the given no-argument getters by method name.
+     * getId() is derived from getIdLong() like it is for the real snowflake entities.
+     * @param type
+     * @param name used by toString()
+     * @param props
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, String name, Map<String, Object> props) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            String methodName = method.getName();
+            int argCount = args == null ? 0 : args.length;
+            if (argCount == 0 && props.containsKey(methodName))
+                return props.get(methodName);
+            switch (methodName) {
+                case "getId":
+                    if (argCount == 0 && props.containsKey("getIdLong"))
+                        return Long.toUnsignedString((Long) props.get("getIdLong"));
+                    break;
+                case "toString":
+                    if (argCount == 0) return name;
+                    break;
+                case "hashCode":
+                    if (argCount == 0) return System.identityHashCode(proxy);
+                    break;
+                case "equals":
+                    if (argCount == 1) return proxy == args[0];
+                    break;
+                case "hasPermission":
+                    // offline users are never administrators, so admin commands are always refused
+                    return false;
+            }
+            throw new UnsupportedOperationException(type.getSimpleName() + "." + methodName
+                    + " isn't available offline");
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
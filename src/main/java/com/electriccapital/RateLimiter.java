@@ -0,0 +1,96 @@
+package com.electriccapital;
+
+/**
+ * Keyed token-bucket rate limiter, used to keep a single user or server from flooding the bot with commands.
+ * Each bucket is a single AtomicLong holding its "theoretical arrival time" (the GCRA form of a token bucket),
+ * so acquiring a token is one compare-and-set with no locking on the hot path.
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiter {
+
+    // Once this many keys are tracked, idle (full) buckets get swept out so the map can't grow forever.
+    private static final int PRUNE_THRESHOLD = 10000;
+
+    private final ConcurrentHashMap<Long, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final long intervalNanos;
+    private final long burstNanos;
+
+    /**
+     * Creates a limiter where every key can burst up to the given number of tokens, refilling one token per period.
+     * @param burst
+     * @param refillPeriod
+     * @param unit
+     */
+    public RateLimiter(int burst, long refillPeriod, TimeUnit unit) {
+        if (burst < 1 || refillPeriod < 1)
+            throw new IllegalArgumentException("Burst and refill period must be positive");
+        this.intervalNanos = unit.toNanos(refillPeriod);
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * Takes a token from the bucket for the given key, if there is one.
+     * @param key
+     * @return true if the caller may proceed, false if the key is over its limit
+     */
+    public boolean tryAcquire(long key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= PRUNE_THRESHOLD)
+                prune();
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.get();
+            long start = (tat == Long.MIN_VALUE || tat - now < 0) ? now : tat;
+            long next = start + intervalNanos;
+            if (next - now > burstNanos)
+                return false;
+            if (bucket.compareAndSet(tat, next))
+                return true;
+        }
+    }
+
+    /**
+     * Gives back a token taken by tryAcquire, e.g. when a second limit turned the request down after all.
+     * @param key
+     */
+    public void refund(long key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null)
+            return;
+        while (true) {
+            long tat = bucket.get();
+            if (tat == Long.MIN_VALUE || bucket.compareAndSet(tat, tat - intervalNanos))
+                return;
+        }
+    }
+
+    /**
+     * Drops buckets that have fully refilled, since they behave exactly like a brand new bucket.
+     */
+    public void prune() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Long, AtomicLong>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            long tat = it.next().getValue().get();
+            if (tat == Long.MIN_VALUE || tat - now <= 0)
+                it.remove();
+        }
+    }
+
+    /**
+     * Number of keys currently being tracked.
+     * @return
+     */
+    public int size() {
+        return buckets.size();
+    }
+}
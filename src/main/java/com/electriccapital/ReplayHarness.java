@@ -0,0 +1,323 @@
+package com.electriccapital;
+
+/**
+ * Offline load generator for MessageEvent. Reads a recorded message trace (or synthesizes one), turns every line
+ * into a GuildMessageReceivedEvent built from OfflineEntities and pushes it through the real listener at a fixed
+ * rate and concurrency, against a scratch database. Reports sustained throughput, ingest latency percentiles and
+ * how much the database grew, so ingestion can be capacity-planned without a Discord connection.
+ *
+ * Trace files are CSV, one message per line: timestampMillis,guildID,channelID,userID,contentLength
+ * Lines starting with # are ignored.
+ *
+ * With --ingest-log the listener runs in scale-out mode and appends to an ingestion log instead, so several
+ * harnesses can stand in for several bot instances feeding IngestAggregator on one machine.
+ *
+ * Usage: ReplayHarness [--trace file | --messages n --guilds n --channels n --users n --content-length n --seed n]
+ *                      [--rate msgsPerSecond] [--threads n] [--db file] [--write-trace file]
+ *                      [--ingest-log dir --instance id --partitions n]
+ */
+
+import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import org.apache.log4j.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+public class ReplayHarness {
+
+    private static final List<String> OPTIONS = Arrays.asList("trace", "messages", "guilds", "channels", "users",
+            "content-length", "seed", "rate", "threads", "db", "write-trace", "ingest-log", "instance", "partitions");
+    private static final int MAX_CONTENT_LENGTH = 2000;
+
+    /**
+     * A single message in a trace.
+     */
+    static class TraceEvent {
+        final long timestamp;
+        final long guildId;
+        final long channelId;
+        final long userId;
+        final int contentLength;
+
+        TraceEvent(long timestamp, long guildId, long channelId, long userId, int contentLength) {
+            this.timestamp = timestamp;
+            this.guildId = guildId;
+            this.channelId = channelId;
+            this.userId = userId;
+            this.contentLength = Math.max(1, Math.min(contentLength, MAX_CONTENT_LENGTH));
+        }
+    }
+
+    /**
+     * Runs a replay and prints the report.
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.WARN);
+        Map<String, String> opts = parseArgs(args);
+        if (opts == null) {
+            System.err.println("Usage: ReplayHarness [--trace file | --messages n --guilds n --channels n --users n " +
+                    "--content-length n --seed n] [--rate msgsPerSecond] [--threads n] [--db file] [--write-trace file] " +
+                    "[--ingest-log dir --instance id --partitions n]");
+            System.exit(1);
+        }
+
+        List<TraceEvent> trace;
+        if (opts.containsKey("trace")) {
+            trace = readTrace(Paths.get(opts.get("trace")));
+        } else {
+            trace = synthesize(intOpt(opts, "messages", 10000), intOpt(opts, "guilds", 5),
+                    intOpt(opts, "channels", 4), intOpt(opts, "users", 200),
+                    intOpt(opts, "content-length", 60), intOpt(opts, "seed", 42));
+        }
+        if (opts.containsKey("write-trace"))
+            writeTrace(trace, Paths.get(opts.get("write-trace")));
+
+        // Never default to the bot's real database - either an explicit file or a throwaway one.
+        File db;
+        if (opts.containsKey("db")) {
+            db = new File(opts.get("db"));
+        } else {
+            db = File.createTempFile("replay-", ".db");
+            db.deleteOnExit();
+            new File(db.getPath() + "-wal").deleteOnExit();
+            new File(db.getPath() + "-shm").deleteOnExit();
+        }
+        DBUtils.setDatabaseFile(db.getPath());
+        Main.createDatabase();
+        seedWatchlist(trace);
+        DBCache.load();
+
+        int threads = intOpt(opts, "threads", 1);
+        double rate = Double.parseDouble(opts.getOrDefault("rate", "0"));
+        long rowsBefore = DBUtils.getIntResult("SELECT COUNT(*) FROM messages", 1);
+        long bytesBefore = dbBytes(db);
+
+        IngestLog ingestLog = null;
+        if (opts.containsKey("ingest-log")) {
+            ingestLog = new IngestLog(new File(opts.get("ingest-log")), opts.getOrDefault("instance", "replay"),
+                    intOpt(opts, "partitions", 8));
+        }
+
+        long[] latencies = new long[trace.size()];
+        AtomicLong failures = new AtomicLong();
+        long wallNanos = replay(trace, new MessageEvent(ingestLog), threads, rate, latencies, failures);
+
+        long rowsAfter = DBUtils.getIntResult("SELECT COUNT(*) FROM messages", 1);
+        long bytesAfter = dbBytes(db);
+        if (ingestLog != null)
+            ingestLog.close();
+        report(trace.size(), threads, rate, wallNanos, latencies, failures.get(),
+                rowsAfter - rowsBefore, bytesBefore, bytesAfter, db, ingestLog);
+    }
+
+    /**
+     * Feeds every event in the trace through the listener. Each worker claims the next event in order, waits until
+     * that event's slot in the schedule (if a rate was given), then hands it to the listener. With a rate, latency
+     * is measured from the scheduled time rather than the actual start, so falling behind shows up in the numbers.
+     * @param trace
+     * @param listener
+     * @param threads
+     * @param rate messages per second, or 0 to go as fast as possible
+     * @param latencies filled in with each event's latency in nanoseconds
+     * @param failures incremented for every event the listener threw on
+     * @return wall-clock time of the whole replay in nanoseconds
+     * @throws InterruptedException
+     */
+    static long replay(List<TraceEvent> trace, MessageEvent listener, int threads, double rate,
+                       long[] latencies, AtomicLong failures) throws InterruptedException {
+        long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < trace.size()) {
+                    TraceEvent ev = trace.get(i);
+                    GuildMessageReceivedEvent event = OfflineEntities.messageEvent(i, ev.guildId, ev.channelId,
+                            ev.userId, 1L + i, content(ev.contentLength), ev.timestamp);
+                    long scheduled = start + i * intervalNanos;
+                    long now;
+                    while ((now = System.nanoTime()) - scheduled < 0)
+                        LockSupport.parkNanos(scheduled - now);
+                    long begin = intervalNanos > 0 ? scheduled : now;
+                    try {
+                        listener.onGuildMessageReceived(event);
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Prints the results of a replay.
+     */
+    private static void report(int events, int threads, double rate, long wallNanos, long[] latencies,
+                               long failures, long rowsAdded, long bytesBefore, long bytesAfter, File db,
+                               IngestLog ingestLog) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        double seconds = wallNanos / 1e9;
+        System.out.println("Replayed " + events + " messages on " + threads + " thread(s) at "
+                + (rate > 0 ? rate + " msg/s target" : "max rate") + " against " + db.getPath());
+        System.out.printf("  wall time:       %.2f s%n", seconds);
+        System.out.printf("  throughput:      %.1f msg/s%n", events / seconds);
+        System.out.printf("  latency p50:     %.3f ms%n", percentile(sorted, 0.50) / 1e6);
+        System.out.printf("  latency p99:     %.3f ms%n", percentile(sorted, 0.99) / 1e6);
+        System.out.printf("  latency max:     %.3f ms%n", (sorted.length == 0 ? 0 : sorted[sorted.length - 1]) / 1e6);
+        System.out.println("  listener errors: " + failures);
+        if (ingestLog != null) {
+            System.out.println("  log records:     " + ingestLog.appendedCount() + " appended ("
+                    + (events - ingestLog.appendedCount()) + " lost)");
+            return;
+        }
+        // DBUtils logs and swallows SQL errors, so lost rows (e.g. from "database is locked") only show up here.
+        System.out.println("  rows stored:     " + rowsAdded + " (" + (events - rowsAdded) + " lost)");
+        System.out.printf("  db growth:       %d -> %d bytes (%.1f bytes/msg)%n", bytesBefore, bytesAfter,
+                events == 0 ? 0.0 : (bytesAfter - bytesBefore) / (double) events);
+    }
+
+    /**
+     * Nearest-rank percentile of an already sorted array.
+     * @param sorted
+     * @param p between 0 and 1
+     * @return
+     */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, Math.min(rank, sorted.length) - 1)];
+    }
+
+    /**
+     * Generates a random trace, spread evenly over the past few minutes.
+     * @param messages
+     * @param guilds
+     * @param channelsPerGuild
+     * @param users
+     * @param avgContentLength
+     * @param seed
+     * @return
+     */
+    static List<TraceEvent> synthesize(int messages, int guilds, int channelsPerGuild, int users,
+                                       int avgContentLength, long seed) {
+        Random random = new Random(seed);
+        List<TraceEvent> trace = new ArrayList<>(messages);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++) {
+            // shaped like snowflakes (creation time in the high bits) so they spread over partitions like real IDs
+            long guildId = (1000L + random.nextInt(guilds)) << 22;
+            long channelId = guildId + 1 + random.nextInt(channelsPerGuild);
+            long userId = (5000000L + random.nextInt(users)) << 22;
+            int length = 1 + random.nextInt(2 * avgContentLength);
+            trace.add(new TraceEvent(now - (messages - i) * 10L, guildId, channelId, userId, length));
+        }
+        return trace;
+    }
+
+    /**
+     * Reads a CSV trace file.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    static List<TraceEvent> readTrace(Path path) throws IOException {
+        List<TraceEvent> trace = new ArrayList<>();
+        int lineNum = 0;
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            lineNum++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] parts = line.split(",");
+            if (parts.length != 5)
+                throw new IOException(path + ":" + lineNum + ": expected 5 fields, got " + parts.length);
+            try {
+                trace.add(new TraceEvent(Long.parseLong(parts[0].trim()), Long.parseLong(parts[1].trim()),
+                        Long.parseLong(parts[2].trim()), Long.parseLong(parts[3].trim()),
+                        Integer.parseInt(parts[4].trim())));
+            } catch (NumberFormatException e) {
+                throw new IOException(path + ":" + lineNum + ": " + e.getMessage(), e);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Writes a trace in the same format readTrace reads, so a synthetic run can be replayed again exactly.
+     * @param trace
+     * @param path
+     * @throws IOException
+     */
+    static void writeTrace(List<TraceEvent> trace, Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# timestampMillis,guildID,channelID,userID,contentLength\n");
+            for (TraceEvent ev : trace) {
+                writer.write(ev.timestamp + "," + ev.guildId + "," + ev.channelId + "," + ev.userId + ","
+                        + ev.contentLength + "\n");
+            }
+        }
+    }
+
+    /**
+     * Puts every channel that appears in the trace on the watchlist, so all of its messages get stored.
+     * @param trace
+     */
+    private static void seedWatchlist(List<TraceEvent> trace) {
+        Map<Long, Long> channels = new LinkedHashMap<>();
+        for (TraceEvent ev : trace)
+            channels.put(ev.channelId, ev.guildId);
+        for (Map.Entry<Long, Long> entry : channels.entrySet()) {
+            if (DBUtils.getIntResult("SELECT count(1) from channels WHERE channelID = " + entry.getKey(), 1) != 0)
+                continue;
+            DBUtils.executePrepared("INSERT INTO channels (serverName, serverID, channelName, channelID)" +
+                            "VALUES (?, ?, ?, ?)", "guild-" + entry.getValue(), entry.getValue(),
+                    "channel-" + entry.getKey(), entry.getKey());
+        }
+    }
+
+    private static String content(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+
+    private static long dbBytes(File db) {
+        return db.length() + new File(db.getPath() + "-wal").length();
+    }
+
+    private static int intOpt(Map<String, String> opts, String key, int def) {
+        return opts.containsKey(key) ? Integer.parseInt(opts.get(key)) : def;
+    }
+
+    /**
+     * Parses --key value pairs.
+     * @param args
+     * @return the options, or null if the arguments are malformed
+     */
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length || !OPTIONS.contains(args[i].substring(2)))
+                return null;
+            opts.put(args[i].substring(2), args[i + 1]);
+        }
+        return opts;
+    }
+}
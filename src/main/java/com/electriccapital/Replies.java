@@ -0,0 +1,54 @@
+package com.electriccapital;
+
+/**
+ * Sends the bot's replies. Every outgoing message goes through here so the number of replies sitting in JDA's
+ * REST queue can be tracked, and so a reply that is identical to one already pending for the same channel is
+ * dropped instead of queued again - under spam that keeps us from burning the Discord rate limit on duplicates.
+ */
+
+import net.dv8tion.jda.api.MessageBuilder;
+import net.dv8tion.jda.api.entities.*;
+import org.slf4j.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Replies {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Replies.class);
+
+    // channelID + content of every reply that has been queued but hasn't completed yet
+    private static final Set<String> PENDING = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Queues the contents of a MessageBuilder to a channel, unless the same reply is already pending there.
+     * @param builder
+     * @param channel
+     */
+    public static void send(MessageBuilder builder, MessageChannel channel) {
+        Message message = builder.build();
+        String key = channel.getIdLong() + ":" + message.getContentRaw();
+        if (!PENDING.add(key)) {
+            Metrics.COALESCED_REPLIES.incrementAndGet();
+            return;
+        }
+        Metrics.PENDING_REPLIES.incrementAndGet();
+        try {
+            channel.sendMessage(message).queue(
+                    sent -> done(key),
+                    error -> {
+                        Metrics.FAILED_REPLIES.incrementAndGet();
+                        LOGGER.warn("Couldn't send reply", error);
+                        done(key);
+                    });
+        } catch (RuntimeException e) {
+            // e.g. InsufficientPermissionException, thrown before anything is queued, so neither callback will run
+            done(key);
+            throw e;
+        }
+    }
+
+    private static void done(String key) {
+        PENDING.remove(key);
+        Metrics.PENDING_REPLIES.decrementAndGet();
+    }
+}
@@ -0,0 +1,159 @@
+package com.electriccapital;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * IngestAggregator against a scratch store: every record is applied exactly once and in order, whatever state a
+ * crashed bot or aggregator left the logs and offsets in.
+ */
+public class IngestAggregatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File logRoot;
+    private IngestAggregator aggregator;
+    private Connection conn;
+    private long nextId = 0;
+
+    @Before
+    public void openStore() throws IOException, SQLException {
+        logRoot = folder.newFolder("logs");
+        DBUtils.setDatabaseFile(new File(folder.getRoot(), "store.db").getPath());
+        IngestAggregator.prepareStore();
+        aggregator = new IngestAggregator(logRoot, 0, 1, 500);
+        conn = IngestAggregator.connect();
+    }
+
+    @After
+    public void closeStore() {
+        DBUtils.close(conn);
+        DBUtils.setDatabaseFile(DBUtils.DEFAULT_DB_FILE);
+    }
+
+    @Test
+    public void appliesEachRecordOnce() throws IOException, SQLException {
+        writeSegment(3);
+        assertEquals(3, aggregator.drain(conn));
+        assertEquals(0, aggregator.drain(conn));
+        assertEquals(3, messages());
+    }
+
+    @Test
+    public void skipsTornTailOfSealedSegment() throws IOException, SQLException {
+        File torn = writeSegment(3);
+        truncate(torn, torn.length() - 5);
+        writeSegment(1);
+        assertEquals(3, aggregator.drain(conn));
+        assertEquals(Arrays.asList(0L, 1L, 3L), messageIds());
+        assertFalse(torn.exists());
+        assertEquals(1, offsetRows());
+    }
+
+    @Test
+    public void waitsOnTornTailOfActiveSegment() throws IOException, SQLException {
+        File torn = writeSegment(3);
+        byte[] complete = Files.readAllBytes(torn.toPath());
+        truncate(torn, torn.length() - 5);
+        assertEquals(2, aggregator.drain(conn));
+        assertEquals(0, aggregator.drain(conn));
+
+        // the writer is still running, so it finishes the record eventually
+        Files.write(torn.toPath(), complete);
+        assertEquals(1, aggregator.drain(conn));
+        assertEquals(Arrays.asList(0L, 1L, 2L), messageIds());
+    }
+
+    @Test
+    public void stopsPartitionAtCorruptRecord() throws IOException, SQLException {
+        File corrupt = writeSegment(3);
+        // last payload byte of the middle record
+        flipByte(corrupt, IngestLog.HEADER_BYTES * 2L + IngestLogTest.record(0).encode().length
+                + IngestLogTest.record(1).encode().length - 1);
+        File next = writeSegment(1);
+        assertEquals(1, aggregator.drain(conn));
+        assertEquals(0, aggregator.drain(conn));
+        assertEquals(Collections.singletonList(0L), messageIds());
+        assertTrue(corrupt.exists());
+        assertTrue(next.exists());
+    }
+
+    @Test
+    public void crashAfterCommitBeforeDeleteDoesNotReapply() throws IOException, SQLException {
+        // a fully applied segment that was never deleted, which is what a crash right after the last commit leaves
+        File applied = writeSegment(3);
+        assertEquals(3, aggregator.drain(conn));
+        writeSegment(1);
+        assertTrue(applied.exists());
+
+        assertEquals(1, aggregator.drain(conn));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), messageIds());
+        assertFalse(applied.exists());
+        assertEquals(1, offsetRows());
+    }
+
+    @Test
+    public void crashAfterDeleteBeforeOffsetRowIsHarmless() throws IOException, SQLException {
+        writeSegment(2);
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("INSERT INTO ingest_offsets (source, position) VALUES ('instance/gone.log', 100)");
+        }
+        assertEquals(2, aggregator.drain(conn));
+        assertEquals(2, messages());
+    }
+
+    /**
+     * Opens the log again, which starts a new segment and seals the previous one, and appends records to it.
+     */
+    private File writeSegment(int records) throws IOException {
+        try (IngestLog log = new IngestLog(logRoot, "instance", 1)) {
+            for (int i = 0; i < records; i++)
+                log.append(IngestLogTest.record(nextId++));
+        }
+        List<File> segments = IngestLog.segmentsByPartition(new File(logRoot, "instance")).get(0);
+        return segments.get(segments.size() - 1);
+    }
+
+    private int messages() {
+        return DBUtils.getIntResult("SELECT COUNT(*) FROM messages", 1);
+    }
+
+    private int offsetRows() {
+        return DBUtils.getIntResult("SELECT COUNT(*) FROM ingest_offsets", 1);
+    }
+
+    private List<Long> messageIds() throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT messageID FROM messages ORDER BY rowid")) {
+            while (rs.next())
+                ids.add(rs.getLong(1));
+        }
+        return ids;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.electriccapital;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * How IngestLog.read tells a torn tail (a write that never finished, safe to skip once the segment is sealed) apart
+ * from corruption in the middle of a segment (never skipped, since good records follow it).
+ */
+public class IngestLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File segment;
+    // offset of each record, plus the end of the segment
+    private final List<Long> offsets = new ArrayList<>();
+
+    @Before
+    public void writeSegment() throws IOException {
+        try (IngestLog log = new IngestLog(folder.getRoot(), "instance", 1)) {
+            for (int i = 0; i < 3; i++)
+                log.append(record(i));
+        }
+        segment = IngestLog.segmentsByPartition(new File(folder.getRoot(), "instance")).get(0).get(0);
+        long offset = 0;
+        for (int i = 0; i < 3; i++) {
+            offsets.add(offset);
+            offset += IngestLog.HEADER_BYTES + record(i).encode().length;
+        }
+        offsets.add(offset);
+        assertEquals(offset, segment.length());
+    }
+
+    static IngestRecord record(long id) {
+        return new IngestRecord(1L << 22, "guild", 2, "channel", 3, "user", null, "message " + id, id, id);
+    }
+
+    @Test
+    public void readsCompleteSegment() throws IOException {
+        IngestLog.Batch batch = IngestLog.read(segment, 0, 100);
+        assertEquals(3, batch.records.size());
+        assertEquals(2, batch.records.get(2).messageId);
+        assertEquals(segment.length(), batch.end);
+        assertFalse(batch.torn);
+        assertFalse(batch.corrupt);
+    }
+
+    @Test
+    public void tornHeaderIsTorn() throws IOException {
+        truncate(offsets.get(2) + IngestLog.HEADER_BYTES / 2);
+        assertStopsAt(2, true, false);
+    }
+
+    @Test
+    public void tornPayloadIsTorn() throws IOException {
+        truncate(offsets.get(3) - 5);
+        assertStopsAt(2, true, false);
+    }
+
+    @Test
+    public void badChecksumOnLastRecordIsTorn() throws IOException {
+        flipByte(offsets.get(3) - 1);
+        assertStopsAt(2, true, false);
+    }
+
+    @Test
+    public void badChecksumInTheMiddleIsCorrupt() throws IOException {
+        flipByte(offsets.get(2) - 1);
+        assertStopsAt(1, false, true);
+    }
+
+    @Test
+    public void badLengthInTheMiddleIsCorrupt() throws IOException {
+        // top byte of the length field, making it far bigger than MAX_RECORD_BYTES
+        flipByte(offsets.get(1));
+        assertStopsAt(1, false, true);
+    }
+
+    @Test
+    public void readsFromAnOffset() throws IOException {
+        IngestLog.Batch batch = IngestLog.read(segment, offsets.get(1), 1);
+        assertEquals(1, batch.records.size());
+        assertEquals(1, batch.records.get(0).messageId);
+        assertEquals((long) offsets.get(2), batch.end);
+    }
+
+    private void assertStopsAt(int record, boolean torn, boolean corrupt) throws IOException {
+        IngestLog.Batch batch = IngestLog.read(segment, 0, 100);
+        assertEquals(record, batch.records.size());
+        assertEquals((long) offsets.get(record), batch.end);
+        assertEquals(torn, batch.torn);
+        assertEquals(corrupt, batch.corrupt);
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        }
+    }
+}